@@ -190,6 +190,10 @@ class Trace extends AST {
    2. use the simoutputs to store the value of the output signals in
    each simulation cycle, so they can be displayed at the end. These
    traces should also finally have the length simlength.
+
+   After the simulation has run, all siminputs and simoutputs are also
+   put into the TraceStore tracestore, which can answer queries like
+   "first cycle where Overflow rises" without scanning every cycle.
 */
 
 class Circuit extends AST {
@@ -202,6 +206,7 @@ class Circuit extends AST {
     List<Trace> siminputs;
     List<Trace> simoutputs;
     int simlength;
+    TraceStore tracestore;
 
     Circuit(
             String name,
@@ -295,6 +300,15 @@ class Circuit extends AST {
             nextCycle(env, cycle);  // Cycle starts from 0 in initialize, so we start from 1 here
         }
 
+        // Index all traces for queries after the simulation
+        tracestore = new TraceStore(simlength);
+        for (Trace trace : siminputs) {
+            tracestore.add(trace);
+        }
+        for (Trace trace : simoutputs) {
+            tracestore.add(trace);
+        }
+
         // Print all siminputs
         for (Trace trace : siminputs) {
             System.out.println(trace);
@@ -0,0 +1,401 @@
+package hdl0_compiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/* The TraceStore keeps the traces of a finished simulation in a form
+   that can be queried without scanning every cycle. Each signal is
+   stored as a bitset (one bit per cycle, 64 cycles per word), and on
+   top of that there is a summary index with one entry per block of
+   BLOCK_WORDS words: the number of 1s in the block (popcount) and
+   whether any / all of the cycles in the block are 1.
+
+   Queries are written as TraceQuery expressions, similar to the Expr
+   classes in AST.java, for instance
+
+       store.first(TraceQuery.rise(store.signal("Overflow")), 0, store.length)
+       store.cycles(TraceQuery.and(store.signal("Red"), store.signal("Green")), 0, store.length)
+
+   All cycle ranges are given as [from, to), i.e. "to" is exclusive.
+   A block where the query is known to be all 0 is skipped entirely,
+   and a block where it is known to be all 1 is answered directly from
+   the index, so only blocks with mixed values are looked at word by
+   word.
+*/
+
+class TraceStore {
+    static final int BLOCK_WORDS = 64;                 // words per summary block
+    static final int BLOCK_CYCLES = BLOCK_WORDS * 64;  // cycles per summary block
+
+    int length;  // number of simulation cycles
+    int words;   // number of 64-bit words per signal
+    int blocks;  // number of summary blocks per signal
+    private HashMap<String, TraceSignal> signals = new HashMap<>();
+
+    TraceStore(int length) {
+        this.length = length;
+        this.words  = (length + 63) >>> 6;
+        this.blocks = (words + BLOCK_WORDS - 1) / BLOCK_WORDS;
+    }
+
+    // Store a trace and build its summary index. Values beyond the
+    // length of the store are ignored; missing or NULL values count as 0.
+    public void add(Trace trace) {
+        long[] bits = new long[words];
+        int n = Math.min(length, trace.values.length);
+        for (int i = 0; i < n; i++) {
+            if (Boolean.TRUE.equals(trace.values[i])) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        signals.put(trace.signal, new TraceSignal(this, bits));
+    }
+
+    // Lookup a stored signal, e.g., "Overflow", to be used in a query
+    public TraceSignal signal(String name) {
+        TraceSignal s = signals.get(name);
+        if (s == null) {
+            System.err.println("Signal not in trace store: " + name);
+            System.exit(-1);
+        }
+        return s;
+    }
+
+    public boolean hasSignal(String name) {
+        return signals.containsKey(name);
+    }
+
+    // Value of a query in a single cycle
+    public boolean get(TraceQuery q, int cycle) {
+        checkRange(cycle, cycle + 1);
+        return (q.word(cycle >>> 6) & (1L << cycle)) != 0;
+    }
+
+    // First cycle in [from, to) where the query holds, or -1 if there is none
+    public int first(TraceQuery q, int from, int to) {
+        checkRange(from, to);
+        if (from >= to) return -1;
+        int w = from >>> 6;
+        int lastWord = (to - 1) >>> 6;
+        while (w <= lastWord) {
+            int b = w / BLOCK_WORDS;
+            int state = q.blockState(b);
+            if (state == TraceQuery.NONE) {
+                w = (b + 1) * BLOCK_WORDS;
+                continue;
+            }
+            if (state == TraceQuery.ALL) {
+                return Math.max(from, w << 6);
+            }
+            int end = Math.min((b + 1) * BLOCK_WORDS - 1, lastWord);
+            for (; w <= end; w++) {
+                long bits = q.word(w) & rangeMask(w, from, to);
+                if (bits != 0) {
+                    return (w << 6) + Long.numberOfTrailingZeros(bits);
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Last cycle in [from, to) where the query holds, or -1 if there is none
+    public int last(TraceQuery q, int from, int to) {
+        checkRange(from, to);
+        if (from >= to) return -1;
+        int firstWord = from >>> 6;
+        int w = (to - 1) >>> 6;
+        while (w >= firstWord) {
+            int b = w / BLOCK_WORDS;
+            int state = q.blockState(b);
+            if (state == TraceQuery.NONE) {
+                w = b * BLOCK_WORDS - 1;
+                continue;
+            }
+            if (state == TraceQuery.ALL) {
+                return Math.min(to - 1, (w << 6) + 63);
+            }
+            int start = Math.max(b * BLOCK_WORDS, firstWord);
+            for (; w >= start; w--) {
+                long bits = q.word(w) & rangeMask(w, from, to);
+                if (bits != 0) {
+                    return (w << 6) + 63 - Long.numberOfLeadingZeros(bits);
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Number of cycles in [from, to) where the query holds
+    public int count(TraceQuery q, int from, int to) {
+        checkRange(from, to);
+        if (from >= to) return 0;
+        int total = 0;
+        int firstWord = from >>> 6;
+        int lastWord = (to - 1) >>> 6;
+        for (int b = firstWord / BLOCK_WORDS; b <= lastWord / BLOCK_WORDS; b++) {
+            int state = q.blockState(b);
+            if (state == TraceQuery.NONE) continue;
+            int blockStart = b * BLOCK_CYCLES;
+            int blockEnd = Math.min(blockStart + BLOCK_CYCLES, length);
+            if (state == TraceQuery.ALL) {
+                total += Math.min(to, blockEnd) - Math.max(from, blockStart);
+                continue;
+            }
+            if (from <= blockStart && to >= blockEnd) {
+                int c = q.blockCount(b);
+                if (c >= 0) {
+                    total += c;
+                    continue;
+                }
+            }
+            int start = Math.max(b * BLOCK_WORDS, firstWord);
+            int end = Math.min((b + 1) * BLOCK_WORDS - 1, lastWord);
+            for (int w = start; w <= end; w++) {
+                total += Long.bitCount(q.word(w) & rangeMask(w, from, to));
+            }
+        }
+        return total;
+    }
+
+    // All cycles in [from, to) where the query holds, in increasing order
+    public List<Integer> cycles(TraceQuery q, int from, int to) {
+        checkRange(from, to);
+        List<Integer> result = new ArrayList<>();
+        if (from >= to) return result;
+        int firstWord = from >>> 6;
+        int lastWord = (to - 1) >>> 6;
+        for (int b = firstWord / BLOCK_WORDS; b <= lastWord / BLOCK_WORDS; b++) {
+            int state = q.blockState(b);
+            if (state == TraceQuery.NONE) continue;
+            if (state == TraceQuery.ALL) {
+                int blockStart = b * BLOCK_CYCLES;
+                int blockEnd = Math.min(blockStart + BLOCK_CYCLES, to);
+                for (int i = Math.max(from, blockStart); i < blockEnd; i++) {
+                    result.add(i);
+                }
+                continue;
+            }
+            int start = Math.max(b * BLOCK_WORDS, firstWord);
+            int end = Math.min((b + 1) * BLOCK_WORDS - 1, lastWord);
+            for (int w = start; w <= end; w++) {
+                long bits = q.word(w) & rangeMask(w, from, to);
+                while (bits != 0) {
+                    result.add((w << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;  // clear the lowest set bit
+                }
+            }
+        }
+        return result;
+    }
+
+    // Mask selecting the bits of word w that lie in the cycle range [from, to)
+    private static long rangeMask(int w, int from, int to) {
+        int lo = w << 6;
+        long mask = -1L;
+        if (from > lo) {
+            mask &= -1L << (from - lo);
+        }
+        if (to < lo + 64) {
+            mask &= -1L >>> (64 - (to - lo));
+        }
+        return mask;
+    }
+
+    private void checkRange(int from, int to) {
+        if (from < 0 || to > length || from > to) {
+            System.err.println("Cycle range [" + from + ", " + to + ") outside of trace of length " + length);
+            System.exit(-1);
+        }
+    }
+
+    // Number of cycles in summary block b (the last block may be shorter)
+    int blockLength(int b) {
+        return Math.min(BLOCK_CYCLES, length - b * BLOCK_CYCLES);
+    }
+}
+
+/* A TraceQuery is a Boolean expression over the stored signals that
+   is evaluated 64 cycles at a time. Besides the value of each word it
+   can report, per summary block, whether it is NONE (all 0), ALL (all
+   1) or SOME (mixed or unknown); this is what lets the TraceStore
+   skip whole blocks. Bits beyond the length of the store are
+   undefined and are masked away by the TraceStore. */
+
+abstract class TraceQuery {
+    static final int NONE = 0;
+    static final int SOME = 1;
+    static final int ALL  = 2;
+
+    // Values of the query for cycles 64*w ... 64*w+63, bit i is cycle 64*w+i
+    abstract long word(int w);
+
+    // NONE, SOME or ALL for summary block b
+    abstract int blockState(int b);
+
+    // Number of cycles in block b where the query holds, or -1 if
+    // that is not known without looking at the words
+    int blockCount(int b) {
+        return -1;
+    }
+
+    static TraceQuery and(TraceQuery q1, TraceQuery q2) {
+        return new TraceConjunction(q1, q2);
+    }
+
+    static TraceQuery or(TraceQuery q1, TraceQuery q2) {
+        return new TraceDisjunction(q1, q2);
+    }
+
+    static TraceQuery not(TraceQuery q) {
+        return new TraceNegation(q);
+    }
+
+    // Cycles where q is 1 and was 0 in the previous cycle
+    static TraceQuery rise(TraceQuery q) {
+        return new TraceRise(q);
+    }
+
+    // Cycles where q is 0 and was 1 in the previous cycle
+    static TraceQuery fall(TraceQuery q) {
+        return new TraceRise(new TraceNegation(q));
+    }
+}
+
+class TraceSignal extends TraceQuery {
+    TraceStore store;
+    long[] bits;        // one bit per cycle
+    int[] popcounts;    // number of 1s per summary block
+    long[] anyBlocks;   // bit b set if block b contains a 1
+    long[] allBlocks;   // bit b set if block b contains only 1s
+
+    TraceSignal(TraceStore store, long[] bits) {
+        this.store = store;
+        this.bits  = bits;
+
+        // Build the summary index
+        popcounts = new int[store.blocks];
+        anyBlocks = new long[(store.blocks + 63) >>> 6];
+        allBlocks = new long[(store.blocks + 63) >>> 6];
+        for (int b = 0; b < store.blocks; b++) {
+            int end = Math.min((b + 1) * TraceStore.BLOCK_WORDS, bits.length);
+            int c = 0;
+            for (int w = b * TraceStore.BLOCK_WORDS; w < end; w++) {
+                c += Long.bitCount(bits[w]);
+            }
+            popcounts[b] = c;
+            if (c > 0) anyBlocks[b >>> 6] |= 1L << b;
+            if (c == store.blockLength(b)) allBlocks[b >>> 6] |= 1L << b;
+        }
+    }
+
+    @Override
+    long word(int w) {
+        return bits[w];
+    }
+
+    @Override
+    int blockState(int b) {
+        if ((allBlocks[b >>> 6] & (1L << b)) != 0) return ALL;
+        if ((anyBlocks[b >>> 6] & (1L << b)) != 0) return SOME;
+        return NONE;
+    }
+
+    @Override
+    int blockCount(int b) {
+        return popcounts[b];
+    }
+}
+
+class TraceConjunction extends TraceQuery {
+    TraceQuery q1, q2;
+
+    TraceConjunction(TraceQuery q1, TraceQuery q2) {
+        this.q1 = q1;
+        this.q2 = q2;
+    }
+
+    @Override
+    long word(int w) {
+        return q1.word(w) & q2.word(w);
+    }
+
+    @Override
+    int blockState(int b) {
+        int s1 = q1.blockState(b);
+        if (s1 == NONE) return NONE;
+        int s2 = q2.blockState(b);
+        if (s2 == NONE) return NONE;
+        return (s1 == ALL && s2 == ALL) ? ALL : SOME;
+    }
+}
+
+class TraceDisjunction extends TraceQuery {
+    TraceQuery q1, q2;
+
+    TraceDisjunction(TraceQuery q1, TraceQuery q2) {
+        this.q1 = q1;
+        this.q2 = q2;
+    }
+
+    @Override
+    long word(int w) {
+        return q1.word(w) | q2.word(w);
+    }
+
+    @Override
+    int blockState(int b) {
+        int s1 = q1.blockState(b);
+        if (s1 == ALL) return ALL;
+        int s2 = q2.blockState(b);
+        if (s2 == ALL) return ALL;
+        return (s1 == NONE && s2 == NONE) ? NONE : SOME;
+    }
+}
+
+class TraceNegation extends TraceQuery {
+    TraceQuery q;
+
+    TraceNegation(TraceQuery q) {
+        this.q = q;
+    }
+
+    @Override
+    long word(int w) {
+        return ~q.word(w);
+    }
+
+    @Override
+    int blockState(int b) {
+        int s = q.blockState(b);
+        return s == ALL ? NONE : (s == NONE ? ALL : SOME);
+    }
+}
+
+// Edge detection: a cycle is an edge if q holds there but not in the
+// previous cycle. Cycle 0 has no previous cycle and is never an edge.
+class TraceRise extends TraceQuery {
+    TraceQuery q;
+
+    TraceRise(TraceQuery q) {
+        this.q = q;
+    }
+
+    @Override
+    long word(int w) {
+        long cur = q.word(w);
+        long prev = (w > 0) ? q.word(w - 1) >>> 63 : cur & 1L;  // cycle 0 counts as its own predecessor
+        return cur & ~((cur << 1) | prev);
+    }
+
+    @Override
+    int blockState(int b) {
+        int s = q.blockState(b);
+        if (s == SOME) return SOME;
+        // Inside a block where q is constant, the only possible edge is
+        // at the first cycle of the block
+        if (s == NONE || b == 0) return NONE;
+        boolean before = (q.word(b * TraceStore.BLOCK_WORDS - 1) >>> 63) != 0;
+        return before ? NONE : SOME;
+    }
+}